@@ -99,7 +99,7 @@ public class GtfsParser {
      * @param to
      * @return
      */
-    private double weightCalculation(Node from, Node to) {
+    static double weightCalculation(Node from, Node to) {
         double dx = to.getLon() - from.getLon();
         double dy = to.getLat() - from.getLat();
         return Math.sqrt((Math.pow(dx, 2)) + (Math.pow(dy, 2)));
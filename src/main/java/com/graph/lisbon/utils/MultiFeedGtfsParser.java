@@ -0,0 +1,445 @@
+package com.graph.lisbon.utils;
+
+import com.graph.lisbon.entities.Graph;
+import com.graph.lisbon.entities.Node;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.lang.Integer.parseInt;
+
+public class MultiFeedGtfsParser {
+    private static final String ID_SEPARATOR = ":";
+    private static final double EARTH_RADIUS = 6371000;     // in meters
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final double CELL_MARGIN = 1.01;         // keeps the grid cells a bit bigger than the radius
+
+    private Map<String, String> feeds;  // feed name -> path of its GTFS files
+    private double transferRadius;      // max walking distance between two stops, in meters
+
+    public MultiFeedGtfsParser(Map<String, String> feeds, double transferRadius) {
+        for (String name : feeds.keySet()) {
+            if (name.isEmpty() || name.contains(ID_SEPARATOR)) {
+                throw new IllegalArgumentException("Invalid feed name \"" + name + "\": it must be non empty and not contain \"" + ID_SEPARATOR + "\"");
+            }
+        }
+        this.feeds = feeds;
+        this.transferRadius = transferRadius;
+    }
+
+    /**
+     * Creates a single graph from all the feeds, each feed being parsed by its own worker,
+     * and links the stops of different feeds that are close enough with footpath edges
+     * @param isWeighted
+     * @return
+     */
+    public Graph gtfsToGraph(boolean isWeighted) {
+        Graph graph = new Graph();
+        List<Node> allNodes = new ArrayList<>();
+        int[] nodeFeeds = new int[0];
+        if (this.feeds.isEmpty()) {
+            return graph;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.feeds.size());
+        try {
+            List<String> names = new ArrayList<>();
+            List<Future<FeedShard>> futures = new ArrayList<>();
+            for (Map.Entry<String, String> feed : this.feeds.entrySet()) {
+                names.add(feed.getKey());
+                futures.add(executor.submit(() -> parseFeed(feed.getKey(), feed.getValue())));
+            }
+            // Merge the shards in the order of the feeds and release each one once merged
+            for (int i = 0; i < futures.size(); i++) {
+                FeedShard shard;
+                try {
+                    shard = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException("An error occurred while parsing the feed " + names.get(i), e.getCause());
+                } finally {
+                    futures.set(i, null);
+                }
+                nodeFeeds = Arrays.copyOf(nodeFeeds, nodeFeeds.length + shard.stops.size());
+                Arrays.fill(nodeFeeds, allNodes.size(), nodeFeeds.length, i);
+                mergeShard(graph, shard, isWeighted, allNodes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the feeds", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        addFootpaths(graph, isWeighted, allNodes, nodeFeeds);
+        return graph;
+    }
+
+    /**
+     * Read the stops and the hops of one feed. stop_times.txt is streamed line by line and only
+     * the distinct hops are kept, so the memory used depends on the network and not on the timetable
+     * @param name
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private FeedShard parseFeed(String name, String path) throws IOException {
+        FeedShard shard = new FeedShard(name);
+        gtfsStopsToShard(shard, path);
+        gtfsNetworkToShard(shard, path);
+        return shard;
+    }
+
+    /**
+     * Add to the shard its stops with the stops.txt file
+     * @param shard
+     * @param path
+     * @throws IOException
+     */
+    private void gtfsStopsToShard(FeedShard shard, String path) throws IOException {
+        try (BufferedReader myReader = Files.newBufferedReader(Paths.get(path + "stops.txt"), StandardCharsets.UTF_8)) {
+            String[] header = readHeader(myReader, "stops.txt");
+            int INDEX_STOP_ID = columnIndex(header, "stop_id", "stops.txt");
+            int INDEX_STOP_LAT = columnIndex(header, "stop_lat", "stops.txt");
+            int INDEX_STOP_LON = columnIndex(header, "stop_lon", "stops.txt");
+            int minLength = Math.max(INDEX_STOP_ID, Math.max(INDEX_STOP_LAT, INDEX_STOP_LON)) + 1;
+            int malformedRows = 0;
+            String line;
+            while ((line = myReader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] splitLine = splitCsvLine(line);
+                if (splitLine.length < minLength) {
+                    malformedRows++;
+                    continue;
+                }
+                if (splitLine[INDEX_STOP_LAT].isEmpty() || splitLine[INDEX_STOP_LON].isEmpty()) {
+                    continue; // Generic nodes and boarding areas have no position
+                }
+                if (!shard.stopIndexes.containsKey(splitLine[INDEX_STOP_ID])) {
+                    Node newNode;
+                    try {
+                        newNode = Node.builder()
+                            .id(shard.name + ID_SEPARATOR + splitLine[INDEX_STOP_ID])
+                            .lat(Double.parseDouble(splitLine[INDEX_STOP_LAT]))
+                            .lon(Double.parseDouble(splitLine[INDEX_STOP_LON]))
+                            .build();
+                    } catch (NumberFormatException e) {
+                        malformedRows++;
+                        continue;
+                    }
+                    shard.stopIndexes.put(splitLine[INDEX_STOP_ID], shard.stops.size());
+                    shard.stops.add(newNode);
+                }
+            }
+            reportMalformedRows(shard, "stops.txt", malformedRows);
+        }
+    }
+
+    /**
+     * Add to the shard its hops with the stop_times.txt file
+     * @param shard
+     * @param path
+     * @throws IOException
+     */
+    private void gtfsNetworkToShard(FeedShard shard, String path) throws IOException {
+        try (BufferedReader myReader = Files.newBufferedReader(Paths.get(path + "stop_times.txt"), StandardCharsets.UTF_8)) {
+            String[] header = readHeader(myReader, "stop_times.txt");
+            int INDEX_TRIP_ID = columnIndex(header, "trip_id", "stop_times.txt");
+            int INDEX_STOP_ID = columnIndex(header, "stop_id", "stop_times.txt");
+            int INDEX_STOP_SEQUENCE = columnIndex(header, "stop_sequence", "stop_times.txt");
+            int minLength = Math.max(INDEX_TRIP_ID, Math.max(INDEX_STOP_ID, INDEX_STOP_SEQUENCE)) + 1;
+            int malformedRows = 0;
+
+            String previousTrip = null;
+            int previousSequence = 0;
+            Integer previousStop = null;
+            String line;
+            while ((line = myReader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] currentLine = splitCsvLine(line);
+                if (currentLine.length < minLength) {
+                    malformedRows++;
+                    previousTrip = null; // Do not link the stops around a row we could not read
+                    continue;
+                }
+                int currentSequence;
+                try {
+                    currentSequence = parseInt(currentLine[INDEX_STOP_SEQUENCE].trim());
+                } catch (NumberFormatException e) {
+                    malformedRows++;
+                    previousTrip = null;
+                    continue;
+                }
+                String currentTrip = currentLine[INDEX_TRIP_ID];
+                Integer currentStop = shard.stopIndexes.get(currentLine[INDEX_STOP_ID]);
+                if (currentTrip.equals(previousTrip) && previousSequence < currentSequence &&   //Check if it's same trip and the stop follows the previous one
+                    previousStop != null && currentStop != null && !previousStop.equals(currentStop)) {
+                    shard.addHop(previousStop, currentStop);
+                }
+                previousTrip = currentTrip;
+                previousSequence = currentSequence;
+                previousStop = currentStop;
+            }
+            shard.compactHops();
+            reportMalformedRows(shard, "stop_times.txt", malformedRows);
+        }
+    }
+
+    /**
+     * Read the column names of a GTFS file
+     * @param myReader
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    private static String[] readHeader(BufferedReader myReader, String fileName) throws IOException {
+        String line = myReader.readLine();
+        if (line == null) {
+            throw new IllegalArgumentException(fileName + " is empty");
+        }
+        String[] header = splitCsvLine(line.replace("\uFEFF", ""));
+        for (int i = 0; i < header.length; i++) {
+            header[i] = header[i].trim();
+        }
+        return header;
+    }
+
+    /**
+     * Tell how many rows of a file were skipped because they were too short or had a bad number
+     * @param shard
+     * @param fileName
+     * @param malformedRows
+     */
+    private static void reportMalformedRows(FeedShard shard, String fileName, int malformedRows) {
+        if (malformedRows > 0) {
+            System.out.println("Feed " + shard.name + ": " + malformedRows + " malformed rows skipped in " + fileName);
+        }
+    }
+
+    /**
+     * Give the position of a column in a GTFS file, GTFS does not fix the order of the columns
+     * @param header
+     * @param column
+     * @param fileName
+     * @return
+     */
+    private static int columnIndex(String[] header, String column, String fileName) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(fileName + " has no " + column + " column");
+    }
+
+    /**
+     * Split a CSV line, fields may be quoted and contain commas
+     * @param line
+     * @return
+     */
+    private static String[] splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean inQuotes = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (inQuotes) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    inQuotes = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                inQuotes = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Add the stops and hops of a shard to the graph
+     * @param graph
+     * @param shard
+     * @param isWeighted
+     * @param allNodes
+     */
+    private void mergeShard(Graph graph, FeedShard shard, boolean isWeighted, List<Node> allNodes) {
+        for (Node node : shard.stops) {
+            graph.addNode(node);
+            allNodes.add(node);
+        }
+        double weight = 0;
+        for (int i = 0; i < shard.hopCount; i++) {
+            Node from = shard.stops.get((int) (shard.hops[i] >>> 32));
+            Node to = shard.stops.get((int) shard.hops[i]);
+            if (isWeighted) {
+                weight = GtfsParser.weightCalculation(from, to);
+            }
+            graph.addEdge(from, to, weight);
+            graph.addEdge(to, from, weight);
+            graph.setM(graph.getM() + 1);
+        }
+    }
+
+    /**
+     * Add footpath edges between the stops of different feeds that are within the transfer radius.
+     * The stops are put in a grid of latitude bands as high as the radius, each band being cut in
+     * cells wide enough for its latitude, so each stop is only compared with the stops of its own
+     * cell and of the eight cells around it. Cells wrap around at the antimeridian
+     * @param graph
+     * @param isWeighted
+     * @param allNodes
+     * @param nodeFeeds
+     */
+    private void addFootpaths(Graph graph, boolean isWeighted, List<Node> allNodes, int[] nodeFeeds) {
+        if (this.transferRadius <= 0 || allNodes.isEmpty()) {
+            return;
+        }
+        double latCellSize = this.transferRadius / METERS_PER_DEGREE * CELL_MARGIN;
+
+        Map<Long, List<Integer>> grid = new HashMap<>();
+        for (int i = 0; i < allNodes.size(); i++) {
+            Node node = allNodes.get(i);
+            int latCell = (int) Math.floor(node.getLat() / latCellSize);
+            int lonCell = lonCell(node.getLon(), lonCellCount(latCell, latCellSize));
+            grid.computeIfAbsent(cellKey(latCell, lonCell), k -> new ArrayList<>()).add(i);
+        }
+
+        double weight = 0;
+        for (int i = 0; i < allNodes.size(); i++) {
+            Node from = allNodes.get(i);
+            int latCell = (int) Math.floor(from.getLat() / latCellSize);
+            for (int dLat = -1; dLat <= 1; dLat++) {
+                // Cells of the neighbour band are cut with that band's width
+                int lonCellCount = lonCellCount(latCell + dLat, latCellSize);
+                int lonCell = lonCell(from.getLon(), lonCellCount);
+                for (int dLon = -1; dLon <= 1; dLon++) {
+                    if (dLon + 1 >= lonCellCount) {
+                        break; // Narrow bands have less than three cells, do not visit one twice
+                    }
+                    List<Integer> candidates = grid.get(cellKey(latCell + dLat, Math.floorMod(lonCell + dLon, lonCellCount)));
+                    if (candidates == null) {
+                        continue;
+                    }
+                    for (int j : candidates) {
+                        Node to = allNodes.get(j);
+                        if (j > i && nodeFeeds[i] != nodeFeeds[j] && distance(from, to) <= this.transferRadius) {
+                            if (isWeighted) {
+                                weight = GtfsParser.weightCalculation(from, to);
+                            }
+                            graph.addEdge(from, to, weight);
+                            graph.addEdge(to, from, weight);
+                            graph.setM(graph.getM() + 1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Give the number of cells of a latitude band. Their width is computed for the highest latitude
+     * of the band and of its two neighbours, so any stop of those bands within the radius of a stop of
+     * this band is at most one cell away, and rounded up so the cells cover exactly 360 degrees
+     * @param latCell
+     * @param latCellSize
+     * @return
+     */
+    private static int lonCellCount(int latCell, double latCellSize) {
+        double maxAbsLat = Math.min(90, Math.max(Math.abs((latCell - 1) * latCellSize), Math.abs((latCell + 2) * latCellSize)));
+        double minWidth = latCellSize / Math.max(Math.cos(Math.toRadians(maxAbsLat)), 1e-6);
+        return (int) Math.max(1, Math.floor(360 / minWidth));
+    }
+
+    /**
+     * Give the cell of a longitude in a band of the given number of cells
+     * @param lon
+     * @param lonCellCount
+     * @return
+     */
+    private static int lonCell(double lon, int lonCellCount) {
+        return Math.floorMod((int) Math.floor((lon + 180) / 360 * lonCellCount), lonCellCount);
+    }
+
+    /**
+     * Return the distance in meters between the two input nodes (haversine formula)
+     * @param from
+     * @param to
+     * @return
+     */
+    private double distance(Node from, Node to) {
+        double dLat = Math.toRadians(to.getLat() - from.getLat());
+        double dLon = Math.toRadians(to.getLon() - from.getLon());
+        double a = Math.pow(Math.sin(dLat / 2), 2) +
+            Math.cos(Math.toRadians(from.getLat())) * Math.cos(Math.toRadians(to.getLat())) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+
+    /**
+     * Encode the coordinates of a grid cell as a single key
+     * @param latCell
+     * @param lonCell
+     * @return
+     */
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Stops and distinct hops of a single feed, stops being identified by their index in the list.
+     * Hops are stored as undirected keys in a primitive array which is sorted and deduplicated
+     * whenever it is full, so it only grows with the number of distinct hops
+     */
+    private static class FeedShard {
+        private final String name;
+        private final List<Node> stops = new ArrayList<>();
+        private final Map<String, Integer> stopIndexes = new HashMap<>();
+        private long[] hops = new long[1024];
+        private int hopCount = 0;
+
+        private FeedShard(String name) {
+            this.name = name;
+        }
+
+        private void addHop(int from, int to) {
+            if (this.hopCount == this.hops.length) {
+                compactHops();
+                if (this.hopCount > this.hops.length / 2) {
+                    this.hops = Arrays.copyOf(this.hops, this.hops.length * 2);
+                }
+            }
+            this.hops[this.hopCount++] = ((long) Math.min(from, to) << 32) | Math.max(from, to);
+        }
+
+        private void compactHops() {
+            Arrays.sort(this.hops, 0, this.hopCount);
+            int distinct = 0;
+            for (int i = 0; i < this.hopCount; i++) {
+                if (distinct == 0 || this.hops[distinct - 1] != this.hops[i]) {
+                    this.hops[distinct++] = this.hops[i];
+                }
+            }
+            this.hopCount = distinct;
+        }
+    }
+}